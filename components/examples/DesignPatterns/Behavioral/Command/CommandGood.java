@@ -1,6 +1,55 @@
 // ✅ The Good Way (Command Pattern)
 // Encapsulate requests as objects, allowing undo, queuing, and logging
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32C;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
 // ✅ Command interface
 interface Command {
     void execute();
@@ -24,16 +73,77 @@ class Light {
     public boolean isOn() {
         return isOn;
     }
+    
+    // Sets the state directly, for restoring a snapshot
+    void restore(boolean on) {
+        isOn = on;
+    }
+}
+
+// ✅ Commands that act on a single receiver object and say which one
+interface ReceiverCommand extends Command {
+    Object receiver();
+}
+
+// ✅ Commands that know how to collapse with a later command on the same receiver
+interface MergeableCommand extends ReceiverCommand {
+    // Returned by mergeWith when the two commands undo each other
+    Command CANCELLED = new Command() {
+        public void execute() {
+        }
+        
+        public void undo() {
+        }
+    };
+    
+    // Returns one command equivalent to this then next, CANCELLED when
+    // together they do nothing (e.g. two toggles), or null if they can't merge
+    Command mergeWith(Command next);
+}
+
+// ✅ Commands whose undo puts back state saved by their last execute.
+// Each history entry needs its own object, so whatever executes a
+// command it may record (RemoteControl, the executors) runs a copy.
+interface StatefulCommand extends Command {
+    // An equal command with no saved state yet
+    Command copy();
+    
+    // True once execute has saved state that undo needs
+    boolean hasUndoState();
+    
+    // A copy with fresh undo state, looking through KeyedCommand
+    static Command copyOf(Command command) {
+        if (command instanceof KeyedCommand keyed && keyed.getCommand() instanceof StatefulCommand inner) {
+            return new KeyedCommand(inner.copy(), keyed.idempotencyKey());
+        }
+        return command instanceof StatefulCommand stateful ? stateful.copy() : command;
+    }
 }
 
 // ✅ Concrete commands
-class LightOnCommand implements Command {
+class LightOnCommand implements MergeableCommand {
     private Light light;
     
     public LightOnCommand(Light light) {
         this.light = light;
     }
     
+    public Light getLight() {
+        return light;
+    }
+    
+    public Object receiver() {
+        return light;
+    }
+    
+    // Both commands set the light's state outright, so the later one wins.
+    // Other mergeable commands on this light may not, so they stay separate.
+    public Command mergeWith(Command next) {
+        boolean setsSameLight = next instanceof LightOnCommand on && on.getLight() == light
+            || next instanceof LightOffCommand off && off.getLight() == light;
+        return setsSameLight ? next : null;
+    }
+    
     public void execute() {
         light.turnOn();
     }
@@ -43,13 +153,29 @@ class LightOnCommand implements Command {
     }
 }
 
-class LightOffCommand implements Command {
+class LightOffCommand implements MergeableCommand {
     private Light light;
     
     public LightOffCommand(Light light) {
         this.light = light;
     }
     
+    public Light getLight() {
+        return light;
+    }
+    
+    public Object receiver() {
+        return light;
+    }
+    
+    // Both commands set the light's state outright, so the later one wins.
+    // Other mergeable commands on this light may not, so they stay separate.
+    public Command mergeWith(Command next) {
+        boolean setsSameLight = next instanceof LightOnCommand on && on.getLight() == light
+            || next instanceof LightOffCommand off && off.getLight() == light;
+        return setsSameLight ? next : null;
+    }
+    
     public void execute() {
         light.turnOff();
     }
@@ -59,49 +185,3128 @@ class LightOffCommand implements Command {
     }
 }
 
-// ✅ Invoker
-class RemoteControl {
-    private Command lastCommand;
-    private Command onCommand;
-    private Command offCommand;
+// ✅ Bulk receiver: millions of lights as one packed bitset, addressed by
+// index. Range and mask operations work a 64-bit word at a time.
+// Usage:
+//   LightBank street = LightBank.offHeap(4_000_000);
+//   remote.setCommand(BulkLightCommand.range(street, 0, 1_000_000, BulkOp.ON),
+//                     BulkLightCommand.range(street, 0, 1_000_000, BulkOp.OFF));
+enum BulkOp {
+    ON,
+    OFF,
+    TOGGLE
+}
+
+class LightBank implements Snapshottable {
+    private final int size;
+    private final LongBuffer words;
     
-    public void setCommand(Command onCommand, Command offCommand) {
-        this.onCommand = onCommand;
-        this.offCommand = offCommand;
+    public LightBank(int size) {
+        this(size, LongBuffer.allocate(wordsFor(size)));
     }
     
-    public void pressOnButton() {
-        onCommand.execute();
-        lastCommand = onCommand;
+    // Outside the Java heap: no GC scanning or copying of the bitset
+    public static LightBank offHeap(int size) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(wordsFor(size) * Long.BYTES);
+        bytes.order(ByteOrder.nativeOrder());
+        return new LightBank(size, bytes.asLongBuffer());
     }
     
-    public void pressOffButton() {
-        offCommand.execute();
-        lastCommand = offCommand;
+    private LightBank(int size, LongBuffer words) {
+        this.size = size;
+        this.words = words;
     }
     
-    // ✅ Undo functionality
-    public void pressUndoButton() {
-        if (lastCommand != null) {
-            lastCommand.undo();
+    public int size() {
+        return size;
+    }
+    
+    public synchronized boolean isOn(int index) {
+        checkRange(index, index + 1);
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+    
+    public synchronized int countOn() {
+        int count = 0;
+        for (int i = 0; i < words.capacity(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+    
+    // Applies op to lights [from, to) and returns the words it changed
+    // as they were before (null for TOGGLE, which is its own inverse)
+    public synchronized long[] apply(int from, int to, BulkOp op) {
+        checkRange(from, to);
+        if (from == to) {
+            return op == BulkOp.TOGGLE ? null : new long[0];
+        }
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long[] previous = op == BulkOp.TOGGLE ? null : new long[last - first + 1];
+        for (int w = first; w <= last; w++) {
+            long mask = rangeMask(w, from, to);
+            long word = words.get(w);
+            if (previous != null) {
+                previous[w - first] = word;
+            }
+            words.put(w, apply(word, mask, op));
+        }
+        return previous;
+    }
+    
+    // Mask variant: bit i of mask selects light i
+    public synchronized long[] apply(long[] mask, BulkOp op) {
+        if (mask.length > words.capacity()) {
+            throw new IllegalArgumentException("Mask covers " + mask.length * 64 + " lights, bank has " + size);
+        }
+        long[] previous = op == BulkOp.TOGGLE ? null : new long[mask.length];
+        for (int w = 0; w < mask.length; w++) {
+            long word = words.get(w);
+            if (previous != null) {
+                previous[w] = word;
+            }
+            words.put(w, apply(word, mask[w] & validBits(w), op));
+        }
+        return previous;
+    }
+    
+    // Puts back the bits of [from, to) saved by apply(from, to, op)
+    public synchronized void restore(int from, int to, long[] previous) {
+        checkRange(from, to);
+        int first = from >>> 6;
+        for (int i = 0; i < previous.length; i++) {
+            int w = first + i;
+            long mask = rangeMask(w, from, to);
+            words.put(w, (words.get(w) & ~mask) | (previous[i] & mask));
+        }
+    }
+    
+    // Puts back the masked bits saved by apply(mask, op)
+    public synchronized void restore(long[] mask, long[] previous) {
+        for (int w = 0; w < previous.length; w++) {
+            long bits = mask[w] & validBits(w);
+            words.put(w, (words.get(w) & ~bits) | (previous[w] & bits));
+        }
+    }
+    
+    public synchronized long[] snapshot() {
+        long[] state = new long[words.capacity()];
+        words.get(0, state);
+        return state;
+    }
+    
+    public synchronized void restore(long[] state) {
+        words.put(0, state, 0, Math.min(state.length, words.capacity()));
+    }
+    
+    private static long apply(long word, long mask, BulkOp op) {
+        switch (op) {
+            case ON:
+                return word | mask;
+            case OFF:
+                return word & ~mask;
+            default:
+                return word ^ mask;
+        }
+    }
+    
+    // Bits of word w that fall inside [from, to)
+    private static long rangeMask(int w, int from, int to) {
+        long mask = -1L;
+        if (w == from >>> 6) {
+            mask &= -1L << from;
+        }
+        if (w == (to - 1) >>> 6) {
+            mask &= -1L >>> (63 - ((to - 1) & 63));
+        }
+        return mask;
+    }
+    
+    // Keeps masks from switching on the padding bits past the last light
+    private long validBits(int w) {
+        return w == (size - 1) >>> 6 ? rangeMask(w, 0, size) : -1L;
+    }
+    
+    private void checkRange(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ") outside 0.." + size);
+        }
+    }
+    
+    private static int wordsFor(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
         }
+        return (size + 63) >>> 6;
     }
 }
 
-// Usage
-class App {
-    public static void main(String[] args) {
-        Light light = new Light();
-        RemoteControl remote = new RemoteControl();
+// ✅ One command switches a whole range (or mask) of a LightBank. ON and
+// OFF save the words they overwrite so undo puts back exactly what was
+// there. Only the last execute is kept, so a button that fires the same
+// command again runs a copy(), and each history entry undoes its own run.
+// The saved words stay after undo: a deep redo restores a snapshot
+// instead of executing, and a later undo still needs them.
+class BulkLightCommand implements ReceiverCommand, StatefulCommand {
+    private final LightBank bank;
+    private final int from;
+    private final int to;
+    private final long[] mask;
+    private final BulkOp op;
+    private long[] saved;
+    
+    private BulkLightCommand(LightBank bank, int from, int to, long[] mask, BulkOp op) {
+        this.bank = bank;
+        this.from = from;
+        this.to = to;
+        this.mask = mask;
+        this.op = op;
+    }
+    
+    public static BulkLightCommand range(LightBank bank, int from, int to, BulkOp op) {
+        return new BulkLightCommand(bank, from, to, null, op);
+    }
+    
+    public static BulkLightCommand mask(LightBank bank, long[] mask, BulkOp op) {
+        return new BulkLightCommand(bank, 0, 0, mask.clone(), op);
+    }
+    
+    // TOGGLE saves nothing, so it can be shared
+    public Command copy() {
+        return op == BulkOp.TOGGLE ? this : new BulkLightCommand(bank, from, to, mask, op);
+    }
+    
+    public synchronized boolean hasUndoState() {
+        return saved != null;
+    }
+    
+    public LightBank getBank() {
+        return bank;
+    }
+    
+    public Object receiver() {
+        return bank;
+    }
+    
+    public BulkOp getOp() {
+        return op;
+    }
+    
+    public int getFrom() {
+        return from;
+    }
+    
+    public int getTo() {
+        return to;
+    }
+    
+    // null for a range command
+    public long[] getMask() {
+        return mask == null ? null : mask.clone();
+    }
+    
+    public synchronized void execute() {
+        long[] previous = mask == null ? bank.apply(from, to, op) : bank.apply(mask, op);
+        if (previous != null) {
+            saved = previous;
+        }
+    }
+    
+    public synchronized void undo() {
+        if (op == BulkOp.TOGGLE) {
+            execute();
+            return;
+        }
+        if (saved == null) {
+            throw new IllegalStateException("Undo before execute");
+        }
+        if (mask == null) {
+            bank.restore(from, to, saved);
+        } else {
+            bank.restore(mask, saved);
+        }
+    }
+}
+
+// ✅ Wire format for commands, for other processes or a journal.
+// Each message is [varint tag][varint version][payload]; payloads use
+// varints too, so small receiver ids and arguments take a byte or two.
+// Decoding reads straight from the buffer (heap, direct or mapped)
+// without copying it first. New command types plug in by registering a
+// serializer under a tag that never changes; bump the serializer's
+// version when its payload changes and keep reading the old versions.
+// Usage:
+//   CommandCodec codec = CommandCodec.forLights(lights);
+//   codec.encode(new LightOnCommand(hall), buffer);
+//   Command command = codec.decode(buffer);
+interface CommandSerializer<C extends Command> {
+    int version();
+    void write(C command, ByteBuffer out);
+    C read(ByteBuffer in, int version);
+}
+
+class CommandCodec {
+    private final IdentityHashMap<Class<?>, Registration<?>> byType = new IdentityHashMap<>();
+    private final HashMap<Integer, Registration<?>> byTag = new HashMap<>();
+    
+    // Light on/off as tags 1 and 2: [id]
+    public static CommandCodec forLights(LightRegistry lights) {
+        return new CommandCodec()
+            .register(1, LightOnCommand.class,
+                new LightSerializer<>(lights, LightOnCommand::new, LightOnCommand::getLight))
+            .register(2, LightOffCommand.class,
+                new LightSerializer<>(lights, LightOffCommand::new, LightOffCommand::getLight));
+    }
+    
+    // Register every type before sharing the codec between threads
+    public <C extends Command> CommandCodec register(int tag, Class<C> type, CommandSerializer<C> serializer) {
+        if (tag < 0 || byTag.containsKey(tag) || byType.containsKey(type)) {
+            throw new IllegalArgumentException("Tag " + tag + " or " + type.getSimpleName() + " already registered");
+        }
+        Registration<C> registration = new Registration<>(tag, type, serializer);
+        byTag.put(tag, registration);
+        byType.put(type, registration);
+        return this;
+    }
+    
+    // Writes one message at out's position; BufferOverflowException if it doesn't fit
+    public void encode(Command command, ByteBuffer out) {
+        Registration<?> registration = byType.get(command.getClass());
+        if (registration == null) {
+            throw new IllegalArgumentException("No serializer for " + command.getClass().getSimpleName());
+        }
+        registration.write(command, out);
+    }
+    
+    // Reads one message from in's position and leaves it just past the message
+    public Command decode(ByteBuffer in) {
+        int tag = readVarInt(in);
+        Registration<?> registration = byTag.get(tag);
+        if (registration == null) {
+            throw new IllegalArgumentException("Unknown command tag " + tag);
+        }
+        // readVarInt takes up to 2^32 - 1, which arrives here negative
+        int version = readVarInt(in);
+        if (version < 0) {
+            throw new IllegalArgumentException("Tag " + tag + " version " + (version & 0xFFFFFFFFL) + " is invalid");
+        }
+        if (version > registration.serializer.version()) {
+            throw new IllegalArgumentException("Tag " + tag + " version " + version + " is newer than "
+                + registration.serializer.version());
+        }
+        return registration.serializer.read(in, version);
+    }
+    
+    // ✅ Lets the journal store any registered command whose message fits
+    // in 8 bytes, such as light commands with ids below 2^21. A message
+    // carries no undo state, so commands holding some (an executed bulk ON)
+    // aren't packable: an UNDO record or a cold undo entry needs it.
+    public CommandPacker asPacker() {
+        return new CommandPacker() {
+            public long pack(Command command) {
+                if (command instanceof StatefulCommand stateful && stateful.hasUndoState()) {
+                    return NOT_PACKABLE;
+                }
+                ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES);
+                try {
+                    encode(command, bytes);
+                } catch (BufferOverflowException | IllegalArgumentException e) {
+                    return NOT_PACKABLE;
+                }
+                return bytes.getLong(0);
+            }
+            
+            public Command unpack(long packed) {
+                return decode(ByteBuffer.allocate(Long.BYTES).putLong(0, packed));
+            }
+        };
+    }
+    
+    // Unsigned LEB128: 7 bits per byte, high bit set on all but the last
+    static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+    
+    static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    static void writeVarInt(ByteBuffer out, int value) {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+    
+    static int readVarInt(ByteBuffer in) {
+        long value = readVarLong(in);
+        if (value >>> 32 != 0) {
+            throw new IllegalArgumentException("Varint too large for an int");
+        }
+        return (int) value;
+    }
+    
+    // Zigzag keeps small negative numbers small: 0, -1, 1, -2 -> 0, 1, 2, 3
+    static void writeSignedVarLong(ByteBuffer out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+    
+    static long readSignedVarLong(ByteBuffer in) {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    private static final class Registration<C extends Command> {
+        final int tag;
+        final Class<C> type;
+        final CommandSerializer<C> serializer;
         
-        remote.setCommand(
-            new LightOnCommand(light),
-            new LightOffCommand(light)
-        );
+        Registration(int tag, Class<C> type, CommandSerializer<C> serializer) {
+            this.tag = tag;
+            this.type = type;
+            this.serializer = serializer;
+        }
         
-        remote.pressOnButton();  // Light ON
-        remote.pressOffButton(); // Light OFF
-        remote.pressUndoButton(); // Light ON (undo)
+        void write(Command command, ByteBuffer out) {
+            writeVarInt(out, tag);
+            writeVarInt(out, serializer.version());
+            serializer.write(type.cast(command), out);
+        }
+    }
+    
+    private static final class LightSerializer<C extends Command> implements CommandSerializer<C> {
+        private final LightRegistry lights;
+        private final Function<Light, C> factory;
+        private final Function<C, Light> receiver;
+        
+        LightSerializer(LightRegistry lights, Function<Light, C> factory, Function<C, Light> receiver) {
+            this.lights = lights;
+            this.factory = factory;
+            this.receiver = receiver;
+        }
+        
+        public int version() {
+            return 1;
+        }
+        
+        public void write(C command, ByteBuffer out) {
+            int id = lights.idOf(receiver.apply(command));
+            if (id < 0) {
+                throw new IllegalArgumentException("Light is not registered");
+            }
+            writeVarInt(out, id);
+        }
+        
+        public C read(ByteBuffer in, int version) {
+            int id = readVarInt(in);
+            if (id < 0 || id >= lights.size()) {
+                throw new IllegalArgumentException("Unknown light " + (id & 0xFFFFFFFFL));
+            }
+            return factory.apply(lights.get(id));
+        }
+    }
+}
+
+// Bulk commands on numbered banks: [bank][op][0][from][length] for a range,
+// [bank][op][1][words][word...] for a mask
+class BulkLightSerializer implements CommandSerializer<BulkLightCommand> {
+    private final List<LightBank> banks;
+    
+    BulkLightSerializer(List<LightBank> banks) {
+        this.banks = List.copyOf(banks);
+    }
+    
+    public int version() {
+        return 1;
+    }
+    
+    public void write(BulkLightCommand command, ByteBuffer out) {
+        int bank = banks.indexOf(command.getBank());
+        if (bank < 0) {
+            throw new IllegalArgumentException("LightBank is not registered");
+        }
+        CommandCodec.writeVarInt(out, bank);
+        CommandCodec.writeVarInt(out, command.getOp().ordinal());
+        long[] mask = command.getMask();
+        if (mask == null) {
+            CommandCodec.writeVarInt(out, 0);
+            CommandCodec.writeVarInt(out, command.getFrom());
+            CommandCodec.writeVarInt(out, command.getTo() - command.getFrom());
+        } else {
+            CommandCodec.writeVarInt(out, 1);
+            CommandCodec.writeVarInt(out, mask.length);
+            for (long word : mask) {
+                out.putLong(word);
+            }
+        }
+    }
+    
+    // Rejects anything a valid write couldn't have produced, before allocating
+    public BulkLightCommand read(ByteBuffer in, int version) {
+        int bankIndex = CommandCodec.readVarInt(in);
+        if (bankIndex < 0 || bankIndex >= banks.size()) {
+            throw new IllegalArgumentException("Unknown LightBank " + (bankIndex & 0xFFFFFFFFL));
+        }
+        LightBank bank = banks.get(bankIndex);
+        int opIndex = CommandCodec.readVarInt(in);
+        if (opIndex < 0 || opIndex >= BulkOp.values().length) {
+            throw new IllegalArgumentException("Unknown BulkOp " + (opIndex & 0xFFFFFFFFL));
+        }
+        BulkOp op = BulkOp.values()[opIndex];
+        int kind = CommandCodec.readVarInt(in);
+        if (kind == 0) {
+            long from = CommandCodec.readVarInt(in) & 0xFFFFFFFFL;
+            long to = from + (CommandCodec.readVarInt(in) & 0xFFFFFFFFL);
+            if (to > bank.size()) {
+                throw new IllegalArgumentException("Range [" + from + ", " + to + ") outside 0.." + bank.size());
+            }
+            return BulkLightCommand.range(bank, (int) from, (int) to, op);
+        }
+        if (kind != 1) {
+            throw new IllegalArgumentException("Unknown bulk command kind " + kind);
+        }
+        int words = CommandCodec.readVarInt(in);
+        if (words < 0 || words > in.remaining() / Long.BYTES || words > (bank.size() + 63) >>> 6) {
+            throw new IllegalArgumentException("Bad mask length " + (words & 0xFFFFFFFFL));
+        }
+        long[] mask = new long[words];
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = in.getLong();
+        }
+        return BulkLightCommand.mask(bank, mask, op);
+    }
+}
+
+// ✅ Macro command: runs its children as a dependency graph, so
+// independent children execute concurrently on a fork/join pool
+// Usage:
+//   MacroCommand scene = new MacroCommand();
+//   int dim = scene.add(new LightOffCommand(hall));
+//   scene.add(new LightOnCommand(porch), dim);   // runs after dim
+//   scene.add(new LightOnCommand(kitchen));      // runs alongside both
+//   scene.execute();
+//
+// A child may only depend on children added before it, which keeps the
+// graph acyclic. If a child fails, nothing new is started, and the
+// children that completed are undone in reverse order before the
+// failure is rethrown. Undo runs the graph backwards: a child is undone
+// once everything that depended on it has been undone.
+// copy() copies the children that hold undo state, so pressing the same
+// scene twice records two entries that each undo their own run.
+class MacroCommand implements StatefulCommand {
+    private final ForkJoinPool pool;
+    private final List<Command> children = new ArrayList<>();
+    private final List<int[]> dependencies = new ArrayList<>();
+    
+    public MacroCommand() {
+        this(ForkJoinPool.commonPool());
+    }
+    
+    public MacroCommand(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    // Returns the child's index, for later children to depend on
+    public synchronized int add(Command child, int... dependsOn) {
+        for (int dependency : dependsOn) {
+            if (dependency < 0 || dependency >= children.size()) {
+                throw new IllegalArgumentException("Unknown dependency " + dependency);
+            }
+        }
+        children.add(child);
+        dependencies.add(dependsOn.clone());
+        return children.size() - 1;
+    }
+    
+    public synchronized int size() {
+        return children.size();
+    }
+    
+    public synchronized Command copy() {
+        MacroCommand copy = new MacroCommand(pool);
+        for (int i = 0; i < children.size(); i++) {
+            copy.children.add(StatefulCommand.copyOf(children.get(i)));
+            copy.dependencies.add(dependencies.get(i));
+        }
+        return copy;
+    }
+    
+    public synchronized boolean hasUndoState() {
+        for (Command child : children) {
+            Command inner = child instanceof KeyedCommand keyed ? keyed.getCommand() : child;
+            if (inner instanceof StatefulCommand stateful && stateful.hasUndoState()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public synchronized void execute() {
+        int count = children.size();
+        int[][] before = dependencies.toArray(new int[0][]);
+        Run run = new Run(before, invert(before, count), i -> children.get(i).execute());
+        if (run.failure != null) {
+            for (int k = run.completedCount - 1; k >= 0; k--) {
+                children.get(run.completed[k]).undo();
+            }
+            throw rethrow(run.failure);
+        }
+    }
+    
+    public synchronized void undo() {
+        int count = children.size();
+        int[][] before = dependencies.toArray(new int[0][]);
+        Run run = new Run(invert(before, count), before, i -> children.get(i).undo());
+        if (run.failure != null) {
+            throw rethrow(run.failure);
+        }
+    }
+    
+    // Errors (e.g. OutOfMemoryError) still trigger rollback, then surface as-is
+    private static RuntimeException rethrow(Throwable failure) {
+        if (failure instanceof Error error) {
+            throw error;
+        }
+        if (failure instanceof RuntimeException e) {
+            return e;
+        }
+        return new CompletionException(failure);
+    }
+    
+    // after[i] lists the children that depend on child i
+    private static int[][] invert(int[][] before, int count) {
+        int[] sizes = new int[count];
+        for (int[] deps : before) {
+            for (int dependency : deps) {
+                sizes[dependency]++;
+            }
+        }
+        int[][] after = new int[count][];
+        for (int i = 0; i < count; i++) {
+            after[i] = new int[sizes[i]];
+            sizes[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            for (int dependency : before[i]) {
+                after[dependency][sizes[dependency]++] = i;
+            }
+        }
+        return after;
+    }
+    
+    // One pass over the graph: a node is submitted once all its
+    // prerequisites are done; the caller waits for the last one
+    private final class Run {
+        final int[] completed;
+        int completedCount;
+        Throwable failure;
+        
+        private final int[][] next;
+        private final IntConsumer action;
+        private final AtomicIntegerArray waitingOn;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger order = new AtomicInteger();
+        private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+        
+        Run(int[][] prerequisites, int[][] next, IntConsumer action) {
+            int count = prerequisites.length;
+            this.next = next;
+            this.action = action;
+            this.completed = new int[count];
+            this.waitingOn = new AtomicIntegerArray(count);
+            int roots = 0;
+            for (int i = 0; i < count; i++) {
+                waitingOn.set(i, prerequisites[i].length);
+                if (prerequisites[i].length == 0) {
+                    roots++;
+                }
+            }
+            if (roots == 0) {
+                return;
+            }
+            inFlight.set(roots);
+            for (int i = 0; i < count; i++) {
+                if (prerequisites[i].length == 0) {
+                    int node = i;
+                    pool.execute(() -> runNode(node));
+                }
+            }
+            finished.join();
+            completedCount = order.get();
+            failure = firstFailure.get();
+        }
+        
+        private void runNode(int node) {
+            try {
+                if (firstFailure.get() != null) {
+                    return;
+                }
+                try {
+                    action.accept(node);
+                } catch (Throwable e) {
+                    if (!firstFailure.compareAndSet(null, e)) {
+                        firstFailure.get().addSuppressed(e);
+                    }
+                    return;
+                }
+                completed[order.getAndIncrement()] = node;
+                for (int successor : next[node]) {
+                    if (waitingOn.decrementAndGet(successor) == 0) {
+                        inFlight.incrementAndGet();
+                        pool.execute(() -> runNode(successor));
+                    }
+                }
+            } finally {
+                if (inFlight.decrementAndGet() == 0) {
+                    finished.complete(null);
+                }
+            }
+        }
+    }
+}
+
+// ✅ Undo/redo history
+// Packs commands into a long so old history can be kept compactly
+interface CommandPacker {
+    long NOT_PACKABLE = -1L;
+    
+    long pack(Command command);
+    Command unpack(long packed);
+}
+
+// Receivers whose whole state can be captured and put back in one step
+interface Snapshottable {
+    long[] snapshot();
+    void restore(long[] state);
+}
+
+// Gives each Light a stable small id, so light commands pack to (id << 1 | on)
+// and a snapshot of every light is a bitset indexed by id
+class LightRegistry implements CommandPacker, Snapshottable {
+    private final List<Light> lights = new ArrayList<>();
+    private final IdentityHashMap<Light, Integer> ids = new IdentityHashMap<>();
+    
+    public synchronized int register(Light light) {
+        Integer id = ids.get(light);
+        if (id != null) {
+            return id;
+        }
+        lights.add(light);
+        ids.put(light, lights.size() - 1);
+        return lights.size() - 1;
+    }
+    
+    public synchronized Light get(int id) {
+        return lights.get(id);
+    }
+    
+    public synchronized int idOf(Light light) {
+        Integer id = ids.get(light);
+        return id == null ? -1 : id;
+    }
+    
+    public synchronized int size() {
+        return lights.size();
+    }
+    
+    public synchronized long[] snapshot() {
+        long[] state = new long[(lights.size() + 63) / 64];
+        for (int id = 0; id < lights.size(); id++) {
+            if (lights.get(id).isOn()) {
+                state[id >>> 6] |= 1L << id;
+            }
+        }
+        return state;
+    }
+    
+    // Lights registered after the snapshot was taken are left as they are
+    public synchronized void restore(long[] state) {
+        int count = Math.min(lights.size(), state.length * 64);
+        for (int id = 0; id < count; id++) {
+            lights.get(id).restore((state[id >>> 6] & (1L << id)) != 0);
+        }
+    }
+    
+    public long pack(Command command) {
+        if (command instanceof LightOnCommand) {
+            return packed(((LightOnCommand) command).getLight(), 1);
+        }
+        if (command instanceof LightOffCommand) {
+            return packed(((LightOffCommand) command).getLight(), 0);
+        }
+        return NOT_PACKABLE;
+    }
+    
+    public Command unpack(long packed) {
+        Light light = get((int) (packed >>> 1));
+        return (packed & 1) == 1 ? new LightOnCommand(light) : new LightOffCommand(light);
+    }
+    
+    private long packed(Light light, int on) {
+        int id = idOf(light);
+        return id < 0 ? NOT_PACKABLE : ((long) id << 1) | on;
+    }
+}
+
+// Two-tier stack: the newest commands stay as objects in a fixed ring,
+// older ones spill into a growable ring of packed longs (8 bytes each)
+// capped at maxCold entries. Push and pop are O(1) (amortized while the
+// cold ring grows). Past the cap the oldest entries are forgotten; a
+// command the packer can't handle also forgets everything older than it,
+// because undo must never skip a step.
+final class TieredCommandStack {
+    private final Command[] hot;
+    private int hotHead;
+    private int hotSize;
+    private long[] cold = new long[16];
+    private int coldHead;
+    private int coldSize;
+    private final int maxCold;
+    private final CommandPacker packer;
+    private long forgotten;
+    
+    TieredCommandStack(int hotCapacity, int maxCold, CommandPacker packer) {
+        this.hot = new Command[hotCapacity];
+        this.maxCold = maxCold;
+        this.packer = packer;
+    }
+    
+    void push(Command command) {
+        if (hotSize == hot.length) {
+            spillOldest();
+        }
+        hot[(hotHead + hotSize) % hot.length] = command;
+        hotSize++;
+    }
+    
+    Command pop() {
+        if (hotSize > 0) {
+            int newest = (hotHead + hotSize - 1) % hot.length;
+            Command command = hot[newest];
+            hot[newest] = null;
+            hotSize--;
+            return command;
+        }
+        if (coldSize > 0) {
+            coldSize--;
+            return packer.unpack(cold[(coldHead + coldSize) % cold.length]);
+        }
+        return null;
+    }
+    
+    // 0 is the newest command
+    Command peek(int fromTop) {
+        if (fromTop < hotSize) {
+            return hot[(hotHead + hotSize - 1 - fromTop) % hot.length];
+        }
+        int index = fromTop - hotSize;
+        return packer.unpack(cold[(coldHead + coldSize - 1 - index) % cold.length]);
+    }
+    
+    // Also gives back a grown cold ring, so a cleared redo stack holds no memory
+    void clear() {
+        Arrays.fill(hot, null);
+        hotHead = 0;
+        hotSize = 0;
+        coldHead = 0;
+        coldSize = 0;
+        if (cold.length > 16) {
+            cold = new long[16];
+        }
+    }
+    
+    int size() {
+        return hotSize + coldSize;
+    }
+    
+    long forgottenCount() {
+        return forgotten;
+    }
+    
+    private void spillOldest() {
+        Command oldest = hot[hotHead];
+        hot[hotHead] = null;
+        hotHead = (hotHead + 1) % hot.length;
+        hotSize--;
+        if (oldest instanceof KeyedCommand keyed) {
+            oldest = keyed.getCommand(); // the key only matters when the command is submitted
+        }
+        long packed = packer == null ? CommandPacker.NOT_PACKABLE : packer.pack(oldest);
+        if (packed == CommandPacker.NOT_PACKABLE || maxCold == 0) {
+            forgotten += coldSize + 1;
+            coldHead = 0;
+            coldSize = 0;
+            return;
+        }
+        if (coldSize == maxCold) {
+            coldHead = (coldHead + 1) % cold.length;
+            coldSize--;
+            forgotten++;
+        } else if (coldSize == cold.length) {
+            long[] grown = new long[(int) Math.min((long) cold.length * 2, maxCold)];
+            for (int i = 0; i < coldSize; i++) {
+                grown[i] = cold[(coldHead + i) % cold.length];
+            }
+            cold = grown;
+            coldHead = 0;
+        }
+        cold[(coldHead + coldSize) % cold.length] = packed;
+        coldSize++;
+    }
+}
+
+// ✅ Multi-level undo/redo with bounded memory: hotCapacity command objects
+// per stack, plus up to maxColdBytes of packed history in total when a
+// packer is given (half for undo, half for redo)
+//
+// ✅ Deep undo/redo: with enableSnapshots(), the receivers are snapshotted
+// every interval commands. undo(n) and redo(n) for n beyond the interval
+// restore the nearest snapshot at or below the target and re-execute the
+// few commands after it, so receiver work is bounded by the interval
+// rather than n. Execute is exact where undo may not be (undoing
+// LightOnCommand turns the light off even if it was on before), so a
+// deep undo lands on the exact earlier state, and checkpoints the
+// journal instead of logging n UNDO records.
+// Snapshots assume commands are recorded in the order they executed
+// (inline, or a single bus worker). With a journal set, each snapshot
+// also checkpoints it, so recovery starts from the snapshot too; that
+// needs inline execution, since queued commands are already journaled,
+// so snapshots, a journal and queued execution can't all be enabled.
+class CommandHistory {
+    private final TieredCommandStack undoStack;
+    private final TieredCommandStack redoStack;
+    private CommandJournal journal;
+    private CommandMetrics metrics = CommandMetrics.DISABLED;
+    private Snapshottable receivers;
+    private int snapshotInterval;
+    private int maxSnapshots;
+    private final ArrayDeque<Snapshot> snapshots = new ArrayDeque<>();
+    private boolean queued;
+    // Commands applied since the start of the session: up on execute and
+    // redo, down on undo. Snapshots are tagged with it.
+    private long position;
+    
+    public CommandHistory() {
+        this(1024, 0, null);
+    }
+    
+    public CommandHistory(int hotCapacity, long maxColdBytes, CommandPacker packer) {
+        if (hotCapacity < 1 || maxColdBytes < 0) {
+            throw new IllegalArgumentException("hotCapacity must be positive and maxColdBytes non-negative");
+        }
+        int maxCold = (int) Math.min(Integer.MAX_VALUE - 8, maxColdBytes / 2 / Long.BYTES);
+        this.undoStack = new TieredCommandStack(hotCapacity, maxCold, packer);
+        this.redoStack = new TieredCommandStack(hotCapacity, maxCold, packer);
+    }
+    
+    // Undo and redo change receivers too, so they are journaled like commands
+    public synchronized void setJournal(CommandJournal journal) {
+        requireInlineCheckpoints(journal, receivers, queued);
+        this.journal = journal;
+    }
+    
+    // Set when commands run on an executor and are recorded as they finish
+    public synchronized void setQueuedExecution(boolean queued) {
+        requireInlineCheckpoints(journal, receivers, queued);
+        this.queued = queued;
+    }
+    
+    public synchronized void setMetrics(CommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    // Keeps the newest maxSnapshots snapshots, one every interval commands
+    public synchronized void enableSnapshots(Snapshottable receivers, int interval, int maxSnapshots) {
+        if (interval < 1 || maxSnapshots < 1) {
+            throw new IllegalArgumentException("interval and maxSnapshots must be positive");
+        }
+        requireInlineCheckpoints(journal, receivers, queued);
+        this.receivers = receivers;
+        this.snapshotInterval = interval;
+        this.maxSnapshots = maxSnapshots;
+        snapshots.clear();
+        takeSnapshot();
+    }
+    
+    // A newly executed command invalidates anything that could be redone
+    public synchronized void record(Command command) {
+        undoStack.push(command);
+        redoStack.clear();
+        while (!snapshots.isEmpty() && snapshots.peekLast().position > position) {
+            snapshots.pollLast();
+        }
+        position++;
+        if (receivers != null && position % snapshotInterval == 0) {
+            takeSnapshot();
+        }
+    }
+    
+    public synchronized boolean undo() {
+        return undo(1) == 1;
+    }
+    
+    public synchronized boolean redo() {
+        return redo(1) == 1;
+    }
+    
+    // Undoes up to steps commands and returns how many were undone
+    public synchronized int undo(int steps) {
+        int count = Math.max(0, Math.min(steps, undoStack.size()));
+        long target = position - count;
+        Snapshot snapshot = null;
+        if (receivers != null && count > snapshotInterval) {
+            for (Snapshot candidate : snapshots) {
+                if (candidate.position <= target && position - candidate.position <= undoStack.size()) {
+                    snapshot = candidate;
+                }
+            }
+        }
+        if (snapshot == null) {
+            Command[] commands = popAll(undoStack, count, CommandJournal.UNDO);
+            for (Command command : commands) {
+                metrics.undo(command);
+                redoStack.push(command);
+            }
+        } else {
+            // Restore the snapshot below the target and re-execute up to it
+            receivers.restore(snapshot.state);
+            for (long p = snapshot.position + 1; p <= target; p++) {
+                metrics.execute(undoStack.peek((int) (position - p)));
+            }
+            for (int i = 0; i < count; i++) {
+                redoStack.push(undoStack.pop());
+            }
+            if (journal != null) {
+                journal.checkpoint(receivers);
+            }
+        }
+        position = target;
+        return count;
+    }
+    
+    // Redoes up to steps commands and returns how many were redone
+    public synchronized int redo(int steps) {
+        Command[] commands = popAll(redoStack, steps, CommandJournal.EXECUTE);
+        long target = position + commands.length;
+        int skip = 0;
+        if (receivers != null && commands.length > snapshotInterval) {
+            for (Snapshot candidate : snapshots) {
+                if (candidate.position > position && candidate.position <= target) {
+                    skip = (int) (candidate.position - position);
+                    receivers.restore(candidate.state);
+                }
+            }
+        }
+        for (int i = 0; i < commands.length; i++) {
+            if (i >= skip) {
+                metrics.execute(commands[i]);
+            }
+            undoStack.push(commands[i]);
+        }
+        position = target;
+        return commands.length;
+    }
+    
+    public synchronized int undoDepth() {
+        return undoStack.size();
+    }
+    
+    public synchronized int redoDepth() {
+        return redoStack.size();
+    }
+    
+    // Commands that fell off the end of the bounded history
+    public synchronized long forgottenCount() {
+        return undoStack.forgottenCount() + redoStack.forgottenCount();
+    }
+    
+    public synchronized int snapshotCount() {
+        return snapshots.size();
+    }
+    
+    // Pops up to steps commands, newest first, and journals them all with
+    // a single durable wait before any of them runs
+    private Command[] popAll(TieredCommandStack stack, int steps, int op) {
+        Command[] commands = new Command[Math.max(0, Math.min(steps, stack.size()))];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = stack.pop();
+        }
+        if (journal != null && commands.length > 0) {
+            try {
+                journal.awaitDurable(journal.appendAll(op, commands));
+            } catch (IOException | IllegalArgumentException e) {
+                for (int i = commands.length - 1; i >= 0; i--) {
+                    stack.push(commands[i]);
+                }
+                if (e instanceof IllegalArgumentException unpackable) {
+                    throw unpackable;
+                }
+                throw new UncheckedIOException("Journal write failed; history not changed", (IOException) e);
+            }
+        }
+        return commands;
+    }
+    
+    private void takeSnapshot() {
+        snapshots.addLast(new Snapshot(position, receivers.snapshot()));
+        if (snapshots.size() > maxSnapshots) {
+            snapshots.pollFirst();
+        }
+        if (journal != null) {
+            journal.checkpoint(receivers);
+        }
+    }
+    
+    // A checkpoint would drop the records of commands still in a queue
+    private static void requireInlineCheckpoints(CommandJournal journal, Snapshottable receivers, boolean queued) {
+        if (journal != null && receivers != null && queued) {
+            throw new IllegalStateException("Snapshots with a journal need inline execution");
+        }
+    }
+    
+    private record Snapshot(long position, long[] state) {
+    }
+}
+
+// ✅ Write-ahead journal: every command is made durable before it runs,
+// and replaying the journal at startup rebuilds receiver state.
+// Group commit: concurrent callers append, then one of them fsyncs for
+// everybody written so far, so durability costs one fsync per batch.
+// Usage:
+//   LightRegistry lights = ...;  // register lights in the same order every run
+//   CommandJournal journal = new CommandJournal(Path.of("remote.wal"), lights);
+//   journal.recover(lights);     // checkpoint, then the records after it
+//   remote.useJournal(journal);
+//
+// Fixed 16-byte records: [int crc32c][int op][long packed command].
+// Replay stops at the first record whose checksum doesn't match (a write
+// torn by the crash) and truncates the file there.
+//
+// A command that throws after it was journaled didn't happen: its runner
+// appends an ABORT record naming the record's offset, and replay skips
+// it. If the crash beat the ABORT to disk the command fails again during
+// replay; that record is skipped and counted (replayFailureCount()), so
+// one bad record can't stop every later recovery.
+//
+// Records are replayed in file order, so they must be written in the
+// order the commands run: executors journal on their worker threads, and
+// a CommandBus with more than one worker can't be combined with a journal.
+//
+// ✅ Checkpoints keep recovery short: checkpoint() writes a receiver
+// snapshot to "<file>.checkpoint" and truncates the journal to a single
+// EPOCH record naming that snapshot. A journal whose epoch is older than
+// the checkpoint's was already covered by it (the crash hit between the
+// two steps), so recovery skips it.
+class CommandJournal implements AutoCloseable {
+    static final int EXECUTE = 1;
+    static final int UNDO = 2;
+    static final int EPOCH = 3;
+    static final int ABORT = 4;
+    private static final int RECORD = 16;
+    
+    private final FileChannel channel;
+    private final Path checkpointFile;
+    private final CommandPacker packer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    // written and durable are logical positions that keep growing across
+    // checkpoints; the file offset is the logical position minus base
+    private long base;
+    private long written;
+    private long durable;
+    private long epoch;
+    private boolean syncing;
+    // Commands logged by logDurably that haven't called applied() yet, and
+    // whether a checkpoint is waiting for them, holding back new ones
+    private int inFlight;
+    private boolean checkpointing;
+    private long syncCount;
+    private long recordCount;
+    private int replayFailures;
+    
+    public CommandJournal(Path file, CommandPacker packer) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.checkpointFile = file.resolveSibling(file.getFileName() + ".checkpoint");
+        this.packer = packer;
+        this.written = channel.size() - channel.size() % RECORD;
+        this.durable = written;
+        ByteBuffer header = ByteBuffer.allocate(RECORD);
+        if (readRecord(0, header) && header.getInt(4) == EPOCH) {
+            this.epoch = header.getLong(8);
+        }
+    }
+    
+    // ✅ Recovery: restore the latest checkpoint, then re-apply the journal
+    // records written after it; returns how many records were replayed
+    public int recover(Snapshottable receivers) throws IOException {
+        lock.lock();
+        try {
+            long checkpointEpoch = readCheckpoint(receivers);
+            if (checkpointEpoch > epoch) {
+                epoch = checkpointEpoch;
+                resetTo(epoch);
+                return 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return replay();
+    }
+    
+    // Re-applies every intact record in the file, ignoring any checkpoint.
+    // The first pass finds the end of the intact records and the aborted
+    // ones, the second runs the rest.
+    public int replay() throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        Set<Long> aborted = new HashSet<>();
+        long end = 0;
+        while (readRecord(end, record)) {
+            if (record.getInt(4) == ABORT) {
+                aborted.add(record.getLong(8));
+            }
+            end += RECORD;
+        }
+        int replayed = 0;
+        int failures = 0;
+        for (long position = 0; position < end; position += RECORD) {
+            readRecord(position, record);
+            int op = record.getInt(4);
+            if ((op != EXECUTE && op != UNDO) || aborted.contains(position)) {
+                continue;
+            }
+            try {
+                Command command = packer.unpack(record.getLong(8));
+                if (op == UNDO) {
+                    command.undo();
+                } else {
+                    command.execute();
+                }
+                replayed++;
+            } catch (RuntimeException e) {
+                failures++;
+                System.err.println("Skipped journal record at offset " + position + ": " + e);
+            }
+        }
+        channel.truncate(end);
+        lock.lock();
+        try {
+            base = 0;
+            written = end;
+            durable = end;
+            replayFailures += failures;
+        } finally {
+            lock.unlock();
+        }
+        return replayed;
+    }
+    
+    // ✅ Snapshot the receivers and drop every record the snapshot covers.
+    // Waits for inline commands between logDurably and applied(), and
+    // holds back new ones meanwhile, so none is dropped before it runs.
+    // Queued commands aren't tracked: drain the command bus first.
+    public void checkpoint(Snapshottable receivers) {
+        lock.lock();
+        try {
+            checkpointing = true;
+            while (syncing || inFlight > 0) {
+                synced.awaitUninterruptibly();
+            }
+            long next = epoch + 1;
+            writeCheckpoint(next, receivers.snapshot());
+            epoch = next;
+            resetTo(epoch);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Checkpoint failed", e);
+        } finally {
+            checkpointing = false;
+            synced.signalAll();
+            lock.unlock();
+        }
+    }
+    
+    // Appends the record and returns once it (and everything before it) is
+    // on disk, with the position after it for abort(). The command is in
+    // flight until the caller calls applied().
+    public long logDurably(int op, Command command) {
+        lock.lock();
+        try {
+            while (checkpointing) {
+                synced.awaitUninterruptibly();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            long lsn = append(op, command);
+            awaitDurable(lsn);
+            return lsn;
+        } catch (IOException e) {
+            applied();
+            throw new UncheckedIOException("Journal write failed; command not executed", e);
+        } catch (RuntimeException e) {
+            applied();
+            throw e;
+        }
+    }
+    
+    // Called once a command logged by logDurably has run (or failed)
+    public void applied() {
+        lock.lock();
+        try {
+            inFlight--;
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Marks the record ending at lsn as not run, so replay skips it. Call
+    // it before applied(): a checkpoint would drop the record and move the
+    // offsets. Best effort; if it doesn't reach disk, replay skips the
+    // record when it fails again.
+    public void abort(long lsn) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        long upTo;
+        lock.lock();
+        try {
+            long offset = lsn - RECORD - base;
+            if (offset < 0) {
+                return;
+            }
+            record.putInt(checksum(ABORT, offset)).putInt(ABORT).putLong(offset).flip();
+            while (record.hasRemaining()) {
+                channel.write(record, written - base + record.position());
+            }
+            written += RECORD;
+            upTo = written;
+        } catch (IOException e) {
+            return;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            awaitDurable(upTo);
+        } catch (IOException e) {
+            // Replay skips the record anyway once it fails again
+        }
+    }
+    
+    // Throws IllegalArgumentException if the command can't be journaled;
+    // lets a caller fail fast before queueing it
+    void requireJournalable(Command command) {
+        pack(EXECUTE, command);
+    }
+    
+    long append(int op, Command command) throws IOException {
+        return appendAll(op, new Command[] {command});
+    }
+    
+    // Packs every command before writing any, so an unpackable one leaves
+    // the journal untouched; returns the position after the last record
+    long appendAll(int op, Command[] commands) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(commands.length * RECORD);
+        for (Command command : commands) {
+            long packed = pack(op, command);
+            records.putInt(checksum(op, packed)).putInt(op).putLong(packed);
+        }
+        records.flip();
+        lock.lock();
+        try {
+            long position = written - base;
+            while (records.hasRemaining()) {
+                channel.write(records, position + records.position());
+            }
+            written += records.limit();
+            recordCount += commands.length;
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Replaying EXECUTE only needs the command, not any undo state it holds
+    private long pack(int op, Command command) {
+        Command logged = command instanceof KeyedCommand keyed ? keyed.getCommand() : command;
+        if (op == EXECUTE) {
+            logged = StatefulCommand.copyOf(logged);
+        }
+        long packed = packer.pack(logged);
+        if (packed == CommandPacker.NOT_PACKABLE) {
+            throw new IllegalArgumentException("Cannot journal " + (op == UNDO ? "undo of " : "")
+                + command.getClass().getSimpleName());
+        }
+        return packed;
+    }
+    
+    // ✅ Group commit: the first waiter becomes the leader and fsyncs
+    // everything written so far; the rest wait for that sync to cover them
+    void awaitDurable(long upTo) throws IOException {
+        lock.lock();
+        try {
+            while (durable < upTo) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = written;
+                lock.unlock();
+                try {
+                    channel.force(false);
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    synced.signalAll();
+                }
+                durable = Math.max(durable, target);
+                syncCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long syncCount() {
+        lock.lock();
+        try {
+            return syncCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long recordCount() {
+        lock.lock();
+        try {
+            return recordCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Records skipped during replay because they threw
+    public int replayFailureCount() {
+        lock.lock();
+        try {
+            return replayFailures;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long epoch() {
+        lock.lock();
+        try {
+            return epoch;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+    
+    // Caller holds the lock. Everything before the reset is covered by the
+    // checkpoint, so it counts as durable.
+    private void resetTo(long newEpoch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD);
+        header.putInt(checksum(EPOCH, newEpoch)).putInt(EPOCH).putLong(newEpoch).flip();
+        channel.truncate(0);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(false);
+        written += RECORD;
+        base = written - RECORD;
+        durable = written;
+        synced.signalAll();
+    }
+    
+    // Checkpoint file: [int crc32c][int words][long epoch][long state...],
+    // written to a temporary file and renamed into place
+    private void writeCheckpoint(long newEpoch, long[] state) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(12 + state.length * Long.BYTES);
+        body.putInt(state.length).putLong(newEpoch);
+        for (long word : state) {
+            body.putLong(word);
+        }
+        body.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip();
+            out.write(new ByteBuffer[] {header, body});
+            out.force(true);
+        }
+        Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Restores the receivers from the checkpoint and returns its epoch (0 if none)
+    private long readCheckpoint(Snapshottable receivers) throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(checkpointFile));
+        int crc = bytes.remaining() < 16 ? 0 : bytes.getInt();
+        CRC32C actual = new CRC32C();
+        actual.update(bytes.duplicate());
+        if (bytes.remaining() < 12 || crc != (int) actual.getValue()) {
+            throw new IOException("Corrupt checkpoint " + checkpointFile);
+        }
+        long[] state = new long[bytes.getInt()];
+        long checkpointEpoch = bytes.getLong();
+        for (int i = 0; i < state.length; i++) {
+            state[i] = bytes.getLong();
+        }
+        receivers.restore(state);
+        return checkpointEpoch;
+    }
+    
+    // Reads the record at a file offset; false at the end or a torn record
+    private boolean readRecord(long position, ByteBuffer record) throws IOException {
+        if (position + RECORD > channel.size()) {
+            return false;
+        }
+        record.clear();
+        while (record.hasRemaining()) {
+            channel.read(record, position + record.position());
+        }
+        return record.getInt(0) == checksum(record.getInt(4), record.getLong(8));
+    }
+    
+    private static int checksum(int op, long packed) {
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.allocate(12).putInt(op).putLong(packed).flip());
+        return (int) crc.getValue();
+    }
+}
+
+// ✅ Compaction: collapses commands that cancel or supersede each other on
+// the same receiver before they run. Not thread-safe; use one per worker.
+// Commands on different receivers commute, so a merge keeps the slot of
+// the earlier command. A non-mergeable command may touch anything, so
+// nothing is merged across it.
+class CommandCompactor {
+    private final IdentityHashMap<Object, Integer> lastSlot = new IdentityHashMap<>();
+    private long merged;
+    
+    // Compacts batch[0, size) in place and returns the new size
+    public int compact(Command[] batch, int size) {
+        lastSlot.clear();
+        for (int i = 0; i < size; i++) {
+            if (!(batch[i] instanceof MergeableCommand command)) {
+                lastSlot.clear();
+                continue;
+            }
+            Integer slot = lastSlot.get(command.receiver());
+            Command result = slot == null ? null
+                : ((MergeableCommand) batch[slot]).mergeWith(command);
+            if (result == null) {
+                lastSlot.put(command.receiver(), i);
+                continue;
+            }
+            batch[i] = null;
+            merged++;
+            if (result == MergeableCommand.CANCELLED) {
+                batch[slot] = null;
+                lastSlot.remove(command.receiver());
+                merged++;
+            } else if (result instanceof MergeableCommand) {
+                batch[slot] = result;
+            } else {
+                // Can't merge any further; later commands start a new run
+                batch[slot] = result;
+                lastSlot.remove(command.receiver());
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (batch[i] != null) {
+                batch[kept++] = batch[i];
+            }
+        }
+        Arrays.fill(batch, kept, size, null);
+        return kept;
+    }
+    
+    // Commands that were dropped because they were merged away
+    public long mergedCount() {
+        return merged;
+    }
+}
+
+// ✅ Command bus: callers enqueue and return immediately; worker threads
+// drain the queues in batches. Urgent commands always go first.
+// Usage:
+//   CommandBus bus = remote.useCommandBus(2, 64);
+//   remote.pressOnButton();                         // queued, NORMAL lane
+//   remote.pressOffButton(CommandPriority.URGENT);  // jumps the queue
+enum CommandPriority {
+    URGENT,
+    NORMAL,
+    BACKGROUND
+}
+
+interface CommandListener {
+    void onExecuted(Command command);
+    
+    default void onFailed(Command command, RuntimeException error) {
+    }
+}
+
+// Where RemoteControl hands commands when they shouldn't run inline
+interface CommandExecutor extends AutoCloseable {
+    boolean submit(Command command, CommandPriority priority);
+    long queueDepth();
+    void setMetrics(CommandMetrics metrics);
+    // Journals each command on the worker, right before it runs
+    void setJournal(CommandJournal journal);
+    void close();
+}
+
+class CommandBus implements CommandExecutor {
+    private final Lane[] lanes = new Lane[CommandPriority.values().length];
+    private final ConcurrentLinkedDeque<Thread> idleWorkers = new ConcurrentLinkedDeque<>();
+    private final Thread[] workers;
+    private final int batchSize;
+    private final CommandListener listener;
+    private volatile boolean running = true;
+    private volatile boolean compacting;
+    private volatile CommandMetrics metrics = CommandMetrics.DISABLED;
+    private volatile CommandJournal journal;
+    
+    public CommandBus(int workerCount, int batchSize, CommandListener listener) {
+        if (workerCount < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("workerCount and batchSize must be positive");
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        this.batchSize = batchSize;
+        this.listener = listener;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "command-bus-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+    
+    public boolean submit(Command command) {
+        return submit(command, CommandPriority.NORMAL);
+    }
+    
+    // ✅ Never blocks: the queues are unbounded and lock-free
+    public boolean submit(Command command, CommandPriority priority) {
+        if (!running) {
+            return false;
+        }
+        lanes[priority.ordinal()].offer(StatefulCommand.copyOf(command));
+        Thread idle = idleWorkers.pollFirst();
+        if (idle != null) {
+            LockSupport.unpark(idle);
+        }
+        return true;
+    }
+    
+    // ✅ Merge commands within each batch before running it; only the
+    // surviving commands reach the listener (and so the history)
+    public void enableCompaction() {
+        compacting = true;
+    }
+    
+    public long queueDepth(CommandPriority priority) {
+        return lanes[priority.ordinal()].depth.get();
+    }
+    
+    public long queueDepth() {
+        long depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.depth.get();
+        }
+        return depth;
+    }
+    
+    public void setMetrics(CommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    // ✅ Each batch is journaled after compaction, in the order it runs,
+    // with one durable wait for the whole batch
+    public void setJournal(CommandJournal journal) {
+        this.journal = journal;
+    }
+    
+    public int workerCount() {
+        return workers.length;
+    }
+    
+    // Executes everything already queued, then stops the workers
+    public void close() {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    private void work() {
+        Command[] batch = new Command[batchSize];
+        long[] lsns = new long[batchSize];
+        CommandCompactor compactor = new CommandCompactor();
+        while (true) {
+            int size = fill(batch);
+            if (size > 0) {
+                if (compacting) {
+                    size = compactor.compact(batch, size);
+                }
+                CommandJournal wal = journal;
+                if (wal != null) {
+                    size = logAll(wal, batch, lsns, size);
+                }
+                for (int i = 0; i < size; i++) {
+                    run(batch[i], wal, lsns[i]);
+                    batch[i] = null;
+                }
+                continue;
+            }
+            if (!running) {
+                return;
+            }
+            Thread self = Thread.currentThread();
+            idleWorkers.addFirst(self);
+            if (isEmpty() && running) {
+                LockSupport.park(this);
+            }
+            idleWorkers.remove(self);
+        }
+    }
+    
+    // Each slot takes from the highest-priority lane that has work
+    private int fill(Command[] batch) {
+        int size = 0;
+        while (size < batch.length) {
+            Command next = null;
+            for (Lane lane : lanes) {
+                next = lane.poll();
+                if (next != null) {
+                    break;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            batch[size++] = next;
+        }
+        return size;
+    }
+    
+    // Commands that can't be journaled fail and drop out of the batch;
+    // returns how many are left
+    private int logAll(CommandJournal wal, Command[] batch, long[] lsns, int size) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            Command command = batch[i];
+            batch[i] = null;
+            try {
+                lsns[kept] = wal.append(CommandJournal.EXECUTE, command);
+                batch[kept++] = command;
+            } catch (IllegalArgumentException e) {
+                listener.onFailed(command, e);
+            } catch (IOException e) {
+                listener.onFailed(command, new UncheckedIOException("Journal write failed; command not executed", e));
+            }
+        }
+        if (kept > 0) {
+            try {
+                wal.awaitDurable(lsns[kept - 1]);
+            } catch (IOException e) {
+                UncheckedIOException failure = new UncheckedIOException("Journal write failed; command not executed", e);
+                for (int i = 0; i < kept; i++) {
+                    listener.onFailed(batch[i], failure);
+                    batch[i] = null;
+                }
+                return 0;
+            }
+        }
+        return kept;
+    }
+    
+    private void run(Command command, CommandJournal wal, long lsn) {
+        try {
+            metrics.execute(command);
+        } catch (RuntimeException e) {
+            if (wal != null) {
+                wal.abort(lsn);
+            }
+            listener.onFailed(command, e);
+            return;
+        }
+        listener.onExecuted(command);
+    }
+    
+    private boolean isEmpty() {
+        for (Lane lane : lanes) {
+            if (lane.depth.get() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static final class Lane {
+        final ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue<>();
+        final AtomicLong depth = new AtomicLong();
+        
+        void offer(Command command) {
+            depth.incrementAndGet();
+            queue.offer(command);
+        }
+        
+        Command poll() {
+            Command command = queue.poll();
+            if (command != null) {
+                depth.decrementAndGet();
+            }
+            return command;
+        }
+    }
+}
+
+// ✅ Receiver-striped executor: commands are hashed by receiver onto
+// single-threaded stripes, so each receiver sees its commands in
+// submission order while different receivers run in parallel. The
+// receivers need no locks of their own.
+// Usage:
+//   remote.useStripedExecutor(Runtime.getRuntime().availableProcessors());
+//
+// Commands name their receiver through ReceiverCommand; any other command
+// is treated as its own receiver. Priorities are ignored, since jumping
+// the queue would reorder a receiver's commands.
+//
+// runExclusive() pauses every stripe between commands while an action
+// runs; RemoteControl runs undo and redo that way, so they never race a
+// command on the same receiver.
+class StripedCommandExecutor implements CommandExecutor {
+    private final Stripe[] stripes;
+    private final CommandListener listener;
+    private volatile boolean running = true;
+    private volatile CommandMetrics metrics = CommandMetrics.DISABLED;
+    private volatile CommandJournal journal;
+    
+    public StripedCommandExecutor(int stripeCount, CommandListener listener) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be positive");
+        }
+        this.listener = listener;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe("command-stripe-" + i);
+        }
+    }
+    
+    public boolean submit(Command command, CommandPriority priority) {
+        return submit(command);
+    }
+    
+    public boolean submit(Command command) {
+        if (!running) {
+            return false;
+        }
+        stripes[stripeOf(command)].offer(StatefulCommand.copyOf(command));
+        return true;
+    }
+    
+    public int stripeCount() {
+        return stripes.length;
+    }
+    
+    public long queueDepth(int stripe) {
+        return stripes[stripe].depth.get();
+    }
+    
+    public long queueDepth() {
+        long depth = 0;
+        for (Stripe stripe : stripes) {
+            depth += stripe.depth.get();
+        }
+        return depth;
+    }
+    
+    public void setMetrics(CommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    // Stripes journal one command at a time; concurrent stripes still
+    // share fsyncs through the journal's group commit
+    public void setJournal(CommandJournal journal) {
+        this.journal = journal;
+    }
+    
+    // ✅ Runs action once every stripe has finished the commands submitted
+    // before this call and paused; the stripes resume when it returns.
+    // Don't call it from a command: its own stripe could never pause.
+    public void runExclusive(Runnable action) {
+        if (!running) {
+            action.run();
+            return;
+        }
+        Pause pause = new Pause(stripes.length);
+        for (Stripe stripe : stripes) {
+            stripe.offer(pause);
+        }
+        awaitUninterruptibly(pause.paused);
+        try {
+            action.run();
+        } finally {
+            pause.resumed.countDown();
+        }
+    }
+    
+    // Executes everything already queued, then stops the stripes
+    public void close() {
+        running = false;
+        for (Stripe stripe : stripes) {
+            LockSupport.unpark(stripe.thread);
+        }
+        for (Stripe stripe : stripes) {
+            try {
+                stripe.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    int stripeOf(Command command) {
+        Object receiver = command instanceof KeyedCommand keyed ? keyed.getCommand() : command;
+        if (receiver instanceof ReceiverCommand targeted) {
+            receiver = targeted.receiver();
+        }
+        int hash = System.identityHashCode(receiver) * 0x9E3779B9;
+        return (int) ((hash & 0xFFFFFFFFL) % stripes.length);
+    }
+    
+    // One consumer thread per stripe: a lock-free queue, and the thread
+    // parks when it runs dry and is unparked by the next submit
+    private final class Stripe {
+        final ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue<>();
+        final AtomicLong depth = new AtomicLong();
+        final Thread thread;
+        volatile boolean idle;
+        
+        Stripe(String name) {
+            thread = new Thread(this::work, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        void offer(Command command) {
+            depth.incrementAndGet();
+            queue.offer(command);
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+        }
+        
+        private void work() {
+            while (true) {
+                Command command = queue.poll();
+                if (command != null) {
+                    depth.decrementAndGet();
+                    if (command instanceof Pause pause) {
+                        pause.execute();
+                    } else {
+                        run(command);
+                    }
+                    continue;
+                }
+                if (!running) {
+                    return;
+                }
+                idle = true;
+                if (queue.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+        }
+    }
+    
+    private void run(Command command) {
+        CommandJournal wal = journal;
+        long lsn = 0;
+        if (wal != null) {
+            try {
+                lsn = wal.logDurably(CommandJournal.EXECUTE, command);
+            } catch (RuntimeException e) {
+                listener.onFailed(command, e);
+                return;
+            }
+        }
+        try {
+            metrics.execute(command);
+        } catch (RuntimeException e) {
+            if (wal != null) {
+                wal.abort(lsn);
+            }
+            listener.onFailed(command, e);
+            return;
+        } finally {
+            if (wal != null) {
+                wal.applied();
+            }
+        }
+        listener.onExecuted(command);
+    }
+    
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Queued on every stripe by runExclusive: each stripe checks in, then
+    // waits for the action to finish. Never run, recorded or journaled.
+    private static final class Pause implements Command {
+        final CountDownLatch paused;
+        final CountDownLatch resumed = new CountDownLatch(1);
+        
+        Pause(int stripes) {
+            this.paused = new CountDownLatch(stripes);
+        }
+        
+        public void execute() {
+            paused.countDown();
+            awaitUninterruptibly(resumed);
+        }
+        
+        public void undo() {
+        }
+    }
+}
+
+// ✅ Delayed and recurring commands on a hierarchical timing wheel.
+// Usage:
+//   CommandScheduler scheduler = new CommandScheduler(Duration.ofMillis(10), remote::submit);
+//   CommandScheduler.Timer t = scheduler.schedule(new LightOffCommand(light), Duration.ofMinutes(30));
+//   scheduler.scheduleAtFixedRate(new LightOnCommand(porch), Duration.ZERO, Duration.ofHours(24));
+//   t.cancel();
+//
+// Four wheels of 64 slots; a slot on wheel k spans 64^k ticks. A timer
+// goes on the lowest wheel whose range covers its delay, and when a
+// higher wheel's slot comes due its timers are re-inserted lower down.
+// Slots are intrusive doubly linked lists, so schedule and cancel are
+// O(1) and a pending timer costs one small object, not a task in a
+// ScheduledExecutorService's heap. Delays past the top wheel's range
+// (2^24 ticks) wait in its farthest slot and are re-placed each cascade.
+// dispatch runs on the timer thread. Pass remote::submit: the remote
+// journals, deduplicates and times the command, and hands it to its
+// executor if it has one. Dispatching to a bus directly skips all of that.
+class CommandScheduler implements AutoCloseable {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int WHEELS = 4;
+    
+    private final Timer[] slots = new Timer[WHEELS * SLOTS];
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Consumer<Command> dispatch;
+    private final Thread ticker;
+    private volatile boolean running = true;
+    private long now;
+    private int pending;
+    
+    public CommandScheduler(Duration tick, Consumer<Command> dispatch) {
+        if (tick.isNegative() || tick.isZero()) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        this.tickNanos = tick.toNanos();
+        this.dispatch = dispatch;
+        this.ticker = new Thread(this::tick, "command-scheduler");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+    
+    public Timer schedule(Command command, Duration delay) {
+        return add(new Timer(command, 0), delay);
+    }
+    
+    public Timer scheduleAtFixedRate(Command command, Duration initialDelay, Duration period) {
+        long periodTicks = toTicks(period);
+        if (periodTicks < 1) {
+            throw new IllegalArgumentException("period must be at least one tick");
+        }
+        return add(new Timer(command, periodTicks), initialDelay);
+    }
+    
+    public synchronized int pendingCount() {
+        return pending;
+    }
+    
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+        try {
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // The deadline comes from the clock rather than now, which lags while
+    // the timer thread is busy; rounding up means a command never runs early
+    private synchronized Timer add(Timer timer, Duration delay) {
+        long elapsed = System.nanoTime() - startNanos + Math.max(0, delay.toNanos());
+        timer.deadline = Math.max(now + 1, ceilTicks(elapsed));
+        insert(timer);
+        pending++;
+        return timer;
+    }
+    
+    private long toTicks(Duration duration) {
+        return ceilTicks(Math.max(0, duration.toNanos()));
+    }
+    
+    // Rounds non-negative nanos up to whole ticks (Math.ceilDiv is Java 18+)
+    private long ceilTicks(long nanos) {
+        return nanos / tickNanos + (nanos % tickNanos == 0 ? 0 : 1);
+    }
+    
+    synchronized boolean cancel(Timer timer) {
+        if (timer.slot < 0) {
+            return false;
+        }
+        unlink(timer);
+        pending--;
+        return true;
+    }
+    
+    private void insert(Timer timer) {
+        long delta = timer.deadline - now;
+        int wheel = 0;
+        while (wheel < WHEELS - 1 && delta >= 1L << (SLOT_BITS * (wheel + 1))) {
+            wheel++;
+        }
+        long at = delta < 1L << (SLOT_BITS * WHEELS) ? timer.deadline : now + (SLOTS - 1L << (SLOT_BITS * wheel));
+        int slot = wheel * SLOTS + (int) ((at >>> (SLOT_BITS * wheel)) & (SLOTS - 1));
+        Timer head = slots[slot];
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[slot] = timer;
+    }
+    
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+    
+    private void tick() {
+        List<Command> due = new ArrayList<>();
+        while (running) {
+            long target = (System.nanoTime() - startNanos) / tickNanos;
+            synchronized (this) {
+                while (now < target) {
+                    advance(due);
+                }
+            }
+            for (Command command : due) {
+                try {
+                    dispatch.accept(command);
+                } catch (RuntimeException e) {
+                    Thread self = Thread.currentThread();
+                    self.getUncaughtExceptionHandler().uncaughtException(self, e);
+                }
+            }
+            due.clear();
+            long nextTick = startNanos + (target + 1) * tickNanos;
+            LockSupport.parkNanos(this, nextTick - System.nanoTime());
+        }
+    }
+    
+    // Moves one tick forward: cascade higher wheels whose slot just came
+    // due, then collect everything in the current bottom slot
+    private void advance(List<Command> due) {
+        now++;
+        for (int wheel = 1; wheel < WHEELS; wheel++) {
+            if ((now & ((1L << (SLOT_BITS * wheel)) - 1)) != 0) {
+                break;
+            }
+            int slot = wheel * SLOTS + (int) ((now >>> (SLOT_BITS * wheel)) & (SLOTS - 1));
+            Timer timer = slots[slot];
+            slots[slot] = null;
+            while (timer != null) {
+                Timer next = timer.next;
+                insert(timer);
+                timer = next;
+            }
+        }
+        int slot = (int) (now & (SLOTS - 1));
+        Timer timer = slots[slot];
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.deadline <= now) {
+                unlink(timer);
+                due.add(timer.command);
+                if (timer.period > 0) {
+                    timer.deadline += timer.period;
+                    insert(timer);
+                } else {
+                    pending--;
+                }
+            }
+            timer = next;
+        }
+    }
+    
+    final class Timer {
+        private final Command command;
+        private final long period;
+        private long deadline;
+        private int slot = -1;
+        private Timer prev;
+        private Timer next;
+        
+        private Timer(Command command, long period) {
+            this.command = command;
+            this.period = period;
+        }
+        
+        // Stops future runs; false if it already ran (one-shot) or was cancelled
+        public boolean cancel() {
+            return CommandScheduler.this.cancel(this);
+        }
+    }
+}
+
+// ✅ Idempotency: a command carrying a key is executed at most once per
+// key while that key is remembered, so a caller can safely retry.
+// Usage:
+//   remote.useDuplicateFilter(new DuplicateFilter(Duration.ofMinutes(5), 1_000_000, 65_536));
+//   remote.submit(new KeyedCommand(new LightOnCommand(hall), requestId)); // retried: dropped
+interface IdempotentCommand extends Command {
+    long idempotencyKey();
+}
+
+// Gives any command a key without changing its class
+class KeyedCommand implements IdempotentCommand {
+    private final Command command;
+    private final long key;
+    
+    public KeyedCommand(Command command, long key) {
+        this.command = command;
+        this.key = key;
+    }
+    
+    public Command getCommand() {
+        return command;
+    }
+    
+    public long idempotencyKey() {
+        return key;
+    }
+    
+    public void execute() {
+        command.execute();
+    }
+    
+    public void undo() {
+        command.undo();
+    }
+}
+
+// Remembers keys for about a window, in buckets of window / 4 that are
+// dropped whole as they age out. Each bucket is a Bloom filter (4 hashes,
+// ~10 bits per key), so a new key costs a few hashes and bit probes.
+// A Bloom hit can be a false positive, so it is confirmed against an
+// exact set of the newest exactCapacity keys: a command is only dropped
+// when its key is really there. Size exactCapacity for the keys one
+// window holds at peak rate, or old keys fall out of the exact set first.
+class DuplicateFilter {
+    private static final int BUCKETS = 4;
+    private static final int HASHES = 4;
+    
+    private final long bucketNanos;
+    private final long[][] blooms = new long[BUCKETS][];
+    private final int bitMask;
+    private long epoch = Long.MIN_VALUE;
+    private final RecentKeys exact;
+    private long duplicates;
+    private long falsePositives;
+    
+    public DuplicateFilter(Duration window, int expectedKeysPerWindow, int exactCapacity) {
+        if (window.toNanos() < BUCKETS || expectedKeysPerWindow < 1 || exactCapacity < 1) {
+            throw new IllegalArgumentException("window, expectedKeysPerWindow and exactCapacity must be positive");
+        }
+        this.bucketNanos = window.toNanos() / BUCKETS;
+        long wanted = Math.max(64, (long) expectedKeysPerWindow / BUCKETS * 10);
+        int bits = (int) Math.min(1L << 30, Long.highestOneBit(wanted - 1) << 1);
+        for (int i = 0; i < BUCKETS; i++) {
+            blooms[i] = new long[bits >>> 6];
+        }
+        this.bitMask = bits - 1;
+        this.exact = new RecentKeys(exactCapacity);
+    }
+    
+    // true the first time a key is offered; false for a duplicate
+    public boolean firstSeen(long key) {
+        return firstSeen(key, System.nanoTime());
+    }
+    
+    synchronized boolean firstSeen(long key, long nowNanos) {
+        rotate(Math.floorDiv(nowNanos, bucketNanos));
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        if (mightContain(h1, h2)) {
+            if (exact.contains(key)) {
+                duplicates++;
+                return false;
+            }
+            falsePositives++;
+        }
+        long[] current = blooms[(int) Math.floorMod(epoch, (long) BUCKETS)];
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & bitMask;
+            current[bit >>> 6] |= 1L << bit;
+        }
+        exact.add(key);
+        return true;
+    }
+    
+    // Takes back a key whose command failed, so a retry isn't dropped.
+    // Its Bloom bits stay set; the exact set overrules them.
+    public synchronized void forget(long key) {
+        exact.remove(key);
+    }
+    
+    public synchronized long duplicateCount() {
+        return duplicates;
+    }
+    
+    // Bloom hits the exact set overruled
+    public synchronized long falsePositiveCount() {
+        return falsePositives;
+    }
+    
+    private boolean mightContain(int h1, int h2) {
+        for (long[] bloom : blooms) {
+            boolean all = true;
+            for (int i = 0; i < HASHES && all; i++) {
+                int bit = (h1 + i * h2) & bitMask;
+                all = (bloom[bit >>> 6] & (1L << bit)) != 0;
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Clears the buckets whose time span has passed
+    private void rotate(long now) {
+        if (now == epoch) {
+            return;
+        }
+        long stale = epoch == Long.MIN_VALUE ? BUCKETS : Math.min(BUCKETS, now - epoch);
+        for (long e = now - stale + 1; e <= now; e++) {
+            Arrays.fill(blooms[(int) Math.floorMod(e, (long) BUCKETS)], 0L);
+        }
+        epoch = now;
+    }
+    
+    // Murmur3 finalizer: spreads sequential keys across the filter
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+    
+    // Exact set of the newest keys: open addressing over a long[] (no
+    // boxing), with a ring recording arrival order for eviction
+    private static final class RecentKeys {
+        private final long[] table;
+        private final boolean[] used;
+        private final long[] ring;
+        private int ringHead;
+        private int size;
+        
+        RecentKeys(int capacity) {
+            int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+            this.table = new long[slots];
+            this.used = new boolean[slots];
+            this.ring = new long[capacity];
+        }
+        
+        boolean contains(long key) {
+            return slotOf(key) >= 0;
+        }
+        
+        void add(long key) {
+            if (contains(key)) {
+                return;
+            }
+            if (size == ring.length) {
+                removeFromTable(ring[ringHead]);
+            } else {
+                size++;
+            }
+            ring[ringHead] = key;
+            ringHead = (ringHead + 1) % ring.length;
+            int slot = (int) mix(key) & (table.length - 1);
+            while (used[slot]) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = key;
+            used[slot] = true;
+        }
+        
+        private int slotOf(long key) {
+            int slot = (int) mix(key) & (table.length - 1);
+            while (used[slot]) {
+                if (table[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & (table.length - 1);
+            }
+            return -1;
+        }
+        
+        // Also drops the key's place in the ring, so its old arrival can't
+        // evict it early if it comes back. Searches from the newest end,
+        // where a key that just failed will be.
+        void remove(long key) {
+            if (!contains(key)) {
+                return;
+            }
+            int newest = ringHead - 1;
+            int found = 0;
+            while (ring[Math.floorMod(newest - found, ring.length)] != key) {
+                found++;
+            }
+            for (int i = found; i > 0; i--) {
+                ring[Math.floorMod(newest - i, ring.length)] = ring[Math.floorMod(newest - i + 1, ring.length)];
+            }
+            ringHead = Math.floorMod(ringHead - 1, ring.length);
+            size--;
+            removeFromTable(key);
+        }
+        
+        // Backward-shift deletion keeps every probe chain unbroken
+        private void removeFromTable(long key) {
+            int hole = slotOf(key);
+            if (hole < 0) {
+                return;
+            }
+            int mask = table.length - 1;
+            int slot = hole;
+            while (true) {
+                slot = (slot + 1) & mask;
+                if (!used[slot]) {
+                    break;
+                }
+                int home = (int) mix(table[slot]) & mask;
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    table[hole] = table[slot];
+                    hole = slot;
+                }
+            }
+            used[hole] = false;
+        }
+    }
+}
+
+// ✅ Instrumentation: per command type counts, failures and latency
+// histograms for execute and undo, plus named gauges such as queue depth,
+// all read through one snapshot() call.
+// Usage:
+//   CommandMetrics metrics = new CommandMetrics();
+//   remote.useMetrics(metrics);
+//   metrics.gauge("scheduler.pending", scheduler::pendingCount);
+//   metrics.enableJfrEvents();   // optional, see CommandEvent
+//   CommandMetrics.Snapshot now = metrics.snapshot();
+//
+// Recording is a ClassValue lookup, two nanoTime calls and a few atomic
+// increments; DISABLED (the default everywhere) just runs the command.
+// A snapshot copies every value when it's taken, but not atomically
+// across types, which is fine for monitoring.
+class CommandMetrics {
+    static final CommandMetrics DISABLED = new CommandMetrics(false);
+    
+    private final boolean enabled;
+    private volatile boolean jfr;
+    private final ConcurrentHashMap<String, CommandTypeStats> byName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ClassValue<CommandTypeStats> byType = new ClassValue<>() {
+        protected CommandTypeStats computeValue(Class<?> type) {
+            return byName.computeIfAbsent(type.getName(), CommandTypeStats::new);
+        }
+    };
+    
+    public CommandMetrics() {
+        this(true);
+    }
+    
+    private CommandMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    // Also emit a CommandEvent per execute/undo when a JFR recording wants it
+    public void enableJfrEvents() {
+        jfr = true;
+    }
+    
+    public void gauge(String name, LongSupplier value) {
+        if (enabled) {
+            gauges.put(name, value);
+        }
+    }
+    
+    public void execute(Command command) {
+        run(command, false);
+    }
+    
+    public void undo(Command command) {
+        run(command, true);
+    }
+    
+    private void run(Command command, boolean undo) {
+        if (!enabled) {
+            if (undo) {
+                command.undo();
+            } else {
+                command.execute();
+            }
+            return;
+        }
+        Command measured = command instanceof KeyedCommand keyed ? keyed.getCommand() : command;
+        CommandTypeStats stats = byType.get(measured.getClass());
+        CommandEvent event = jfr ? new CommandEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            if (undo) {
+                command.undo();
+            } else {
+                command.execute();
+            }
+            failed = false;
+        } finally {
+            stats.record(undo, System.nanoTime() - start, failed);
+            if (event != null && event.shouldCommit()) {
+                event.commandType = stats.getType();
+                event.undo = undo;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+    
+    public Snapshot snapshot() {
+        List<TypeSnapshot> types = new ArrayList<>();
+        for (CommandTypeStats stats : byName.values()) {
+            types.add(stats.snapshot());
+        }
+        types.sort((a, b) -> a.type().compareTo(b.type()));
+        TreeMap<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return new Snapshot(List.copyOf(types), Collections.unmodifiableMap(values));
+    }
+    
+    // Values as of snapshot(); commands that run later don't change them
+    public record Snapshot(List<TypeSnapshot> types, Map<String, Long> gauges) {
+        public TypeSnapshot statsFor(Class<? extends Command> type) {
+            for (TypeSnapshot stats : types) {
+                if (stats.type().equals(type.getName())) {
+                    return stats;
+                }
+            }
+            return null;
+        }
+    }
+    
+    public record TypeSnapshot(String type, long executes, long undos, long failures,
+            long executeP50Nanos, long executeP99Nanos, long executeMaxNanos,
+            long undoP50Nanos, long undoP99Nanos, long undoMaxNanos) {
+    }
+}
+
+final class CommandTypeStats {
+    private final String type;
+    private final LatencyHistogram execute = new LatencyHistogram();
+    private final LatencyHistogram undo = new LatencyHistogram();
+    private final LongAdder failures = new LongAdder();
+    
+    CommandTypeStats(String type) {
+        this.type = type;
+    }
+    
+    void record(boolean isUndo, long nanos, boolean failed) {
+        (isUndo ? undo : execute).record(nanos);
+        if (failed) {
+            failures.increment();
+        }
+    }
+    
+    public String getType() {
+        return type;
+    }
+    
+    public long getExecutes() {
+        return execute.count();
+    }
+    
+    public long getUndos() {
+        return undo.count();
+    }
+    
+    public long getFailures() {
+        return failures.sum();
+    }
+    
+    public long executePercentileNanos(double percentile) {
+        return execute.percentile(percentile);
+    }
+    
+    public long undoPercentileNanos(double percentile) {
+        return undo.percentile(percentile);
+    }
+    
+    CommandMetrics.TypeSnapshot snapshot() {
+        return new CommandMetrics.TypeSnapshot(type, getExecutes(), getUndos(), getFailures(),
+            execute.percentile(50), execute.percentile(99), execute.percentile(100),
+            undo.percentile(50), undo.percentile(99), undo.percentile(100));
+    }
+    
+    public String toString() {
+        return type + " executes=" + getExecutes() + " p99=" + executePercentileNanos(99) + "ns"
+            + " undos=" + getUndos() + " p99=" + undoPercentileNanos(99) + "ns failures=" + getFailures();
+    }
+}
+
+// The same log-linear histogram as ObserverGood.java's (within 12.5%, up
+// to ~70 minutes). Each example is compiled on its own in the default
+// package, with no shared module to put it in, so each keeps a copy.
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 41;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    
+    void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.min(Math.max(nanos, 0), MAX_VALUE)));
+        total.increment();
+    }
+    
+    public long count() {
+        return total.sum();
+    }
+    
+    // Upper bound of the bucket holding the given percentile (0-100), 0 if empty
+    public long percentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length() - 1);
+    }
+    
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+    
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
+
+// ✅ JFR event per execute/undo; free when no recording enables it.
+//   java -XX:StartFlightRecording:filename=remote.jfr ... App
+//   jfr print --events remote.CommandExecution remote.jfr
+@Name("remote.CommandExecution")
+@Label("Command Execution")
+@Category("Remote Control")
+class CommandEvent extends Event {
+    @Label("Command Type")
+    String commandType;
+    
+    @Label("Undo")
+    boolean undo;
+    
+    @Label("Failed")
+    boolean failed;
+}
+
+// ✅ Invoker
+class RemoteControl {
+    private final CommandHistory history;
+    private Command onCommand;
+    private Command offCommand;
+    private volatile CommandExecutor executor;
+    private volatile CommandJournal journal;
+    private volatile DuplicateFilter duplicates;
+    private volatile CommandMetrics metrics = CommandMetrics.DISABLED;
+    // Where executors report back: record what ran, free the key of what failed
+    private final CommandListener completions = new CommandListener() {
+        public void onExecuted(Command command) {
+            history.record(command);
+        }
+        
+        public void onFailed(Command command, RuntimeException error) {
+            forgetKey(duplicates, command);
+        }
+    };
+    
+    public RemoteControl() {
+        this(new CommandHistory());
+    }
+    
+    public RemoteControl(CommandHistory history) {
+        this.history = history;
+    }
+    
+    public void setCommand(Command onCommand, Command offCommand) {
+        this.onCommand = onCommand;
+        this.offCommand = offCommand;
+    }
+    
+    public void pressOnButton() {
+        pressOnButton(CommandPriority.NORMAL);
+    }
+    
+    public void pressOffButton() {
+        pressOffButton(CommandPriority.NORMAL);
+    }
+    
+    // Priority only matters once a command bus is in use
+    public void pressOnButton(CommandPriority priority) {
+        invoke(onCommand, priority);
+    }
+    
+    public void pressOffButton(CommandPriority priority) {
+        invoke(offCommand, priority);
+    }
+    
+    // ✅ Switch from inline execution to a queued command bus; history is
+    // recorded as the workers finish each command. Undo/redo stay inline
+    // and act on what has already executed.
+    // With a journal, only one worker: two would run commands in a
+    // different order than they were journaled.
+    public CommandBus useCommandBus(int workers, int batchSize) {
+        if (workers > 1 && journal != null) {
+            throw new IllegalStateException("A journal needs a single-worker command bus");
+        }
+        history.setQueuedExecution(true);
+        CommandBus created = new CommandBus(workers, batchSize, completions);
+        useExecutor(created);
+        return created;
+    }
+    
+    // ✅ Parallel across lights, in order for each light
+    public StripedCommandExecutor useStripedExecutor(int stripes) {
+        history.setQueuedExecution(true);
+        StripedCommandExecutor created = new StripedCommandExecutor(stripes, completions);
+        useExecutor(created);
+        return created;
+    }
+    
+    private void useExecutor(CommandExecutor created) {
+        created.setMetrics(metrics);
+        created.setJournal(journal);
+        CommandExecutor previous = executor;
+        executor = created;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+    
+    // ✅ Crash safety: journal every command (and undo/redo) before it runs.
+    // Queued commands are journaled by the executor as they run, so the
+    // journal follows execution order, not submission order.
+    // Undo of an executed bulk ON/OFF can't be journaled: replaying it
+    // needs the words the command saved, which don't fit a 16-byte record.
+    // That undo throws IllegalArgumentException and leaves the history as
+    // it was. Bulk TOGGLE is its own inverse, so its undo is journaled.
+    public void useJournal(CommandJournal journal) {
+        CommandExecutor current = executor;
+        if (current instanceof CommandBus bus && bus.workerCount() > 1) {
+            throw new IllegalStateException("A journal needs a single-worker command bus");
+        }
+        history.setJournal(journal);
+        this.journal = journal;
+        if (current != null) {
+            current.setJournal(journal);
+        }
+    }
+    
+    // ✅ Time every execute and undo, wherever it runs, and expose the
+    // queue and history depths as gauges
+    public void useMetrics(CommandMetrics metrics) {
+        this.metrics = metrics;
+        history.setMetrics(metrics);
+        CommandExecutor current = executor;
+        if (current != null) {
+            current.setMetrics(metrics);
+        }
+        metrics.gauge("executor.queueDepth", () -> {
+            CommandExecutor active = executor;
+            return active == null ? 0 : active.queueDepth();
+        });
+        metrics.gauge("history.undoDepth", history::undoDepth);
+        metrics.gauge("history.redoDepth", history::redoDepth);
+    }
+    
+    // ✅ Drop repeats of commands that carry an idempotency key
+    public void useDuplicateFilter(DuplicateFilter filter) {
+        this.duplicates = filter;
+    }
+    
+    // Runs a one-off command, such as a retried request with a key;
+    // false if it was dropped as a duplicate
+    public boolean submit(Command command) {
+        return submit(command, CommandPriority.NORMAL);
+    }
+    
+    public boolean submit(Command command, CommandPriority priority) {
+        return invoke(command, priority);
+    }
+    
+    private boolean invoke(Command command, CommandPriority priority) {
+        DuplicateFilter filter = duplicates;
+        if (filter != null && command instanceof IdempotentCommand keyed
+                && !filter.firstSeen(keyed.idempotencyKey())) {
+            return false;
+        }
+        // The key is only kept once the command has run (or been queued)
+        CommandJournal wal = journal;
+        Command run;
+        try {
+            // Queued commands are journaled by the executor; checking here
+            // still rejects an unloggable one on the caller's thread
+            CommandExecutor current = executor;
+            if (current != null) {
+                if (wal != null) {
+                    wal.requireJournalable(command);
+                }
+                if (current.submit(command, priority)) {
+                    return true;
+                }
+            }
+            long lsn = wal == null ? 0 : wal.logDurably(CommandJournal.EXECUTE, command);
+            try {
+                run = StatefulCommand.copyOf(command);
+                metrics.execute(run);
+            } catch (RuntimeException | Error e) {
+                if (wal != null) {
+                    wal.abort(lsn);
+                }
+                throw e;
+            } finally {
+                if (wal != null) {
+                    wal.applied();
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            forgetKey(filter, command);
+            throw e;
+        }
+        history.record(run);
+        return true;
+    }
+    
+    // A command that failed didn't happen, so its retry must not be dropped
+    private static void forgetKey(DuplicateFilter filter, Command command) {
+        if (filter != null && command instanceof IdempotentCommand keyed) {
+            filter.forget(keyed.idempotencyKey());
+        }
+    }
+    
+    // ✅ Undo/redo functionality, as many levels deep as the history keeps.
+    // With a striped executor the stripes pause first, so the undo sees
+    // every command submitted before it and doesn't race any later one.
+    public void pressUndoButton() {
+        onHistory(history::undo);
+    }
+    
+    public void pressRedoButton() {
+        onHistory(history::redo);
+    }
+    
+    private void onHistory(Runnable action) {
+        if (executor instanceof StripedCommandExecutor striped) {
+            striped.runExclusive(action);
+        } else {
+            action.run();
+        }
+    }
+    
+    public CommandHistory getHistory() {
+        return history;
+    }
+}
+
+// Usage
+class App {
+    public static void main(String[] args) {
+        Light light = new Light();
+        RemoteControl remote = new RemoteControl();
+        
+        remote.setCommand(
+            new LightOnCommand(light),
+            new LightOffCommand(light)
+        );
+        
+        remote.pressOnButton();  // Light ON
+        remote.pressOffButton(); // Light OFF
+        remote.pressUndoButton(); // Light ON (undo)
+        remote.pressUndoButton(); // Light OFF (undo again)
+        remote.pressRedoButton(); // Light ON (redo)
+        
+        // ✅ Long sessions: keep 1,024 recent commands as objects and up to
+        // 1 MB of older ones packed as 8-byte longs
+        LightRegistry lights = new LightRegistry();
+        lights.register(light);
+        RemoteControl longSession = new RemoteControl(new CommandHistory(1024, 1 << 20, lights));
+        longSession.setCommand(new LightOnCommand(light), new LightOffCommand(light));
+        longSession.getHistory().enableSnapshots(lights, 256, 16); // undo(n) stays cheap for deep n
+        
+        // ✅ Scenes: one button switches many lights, in parallel where possible
+        MacroCommand scene = new MacroCommand();
+        int hall = scene.add(new LightOffCommand(light));
+        for (int i = 0; i < 8; i++) {
+            scene.add(new LightOnCommand(new Light()), hall);
+        }
+        remote.setCommand(scene, new LightOffCommand(light));
+        remote.pressOnButton();   // hall OFF, then eight lights ON
+        remote.pressUndoButton(); // eight lights OFF, then hall ON
+        
+        // ✅ Timers fire through the remote, like a button press
+        try (CommandScheduler scheduler = new CommandScheduler(Duration.ofMillis(10), remote::submit)) {
+            scheduler.schedule(new LightOffCommand(light), Duration.ofMinutes(30));
+        }
+    }
+}
+
+// ✅ Recovery check for the write-ahead journal
+// Run with: javac CommandGood.java && java JournalRecoveryCheck
+// Writers journal light commands concurrently, then the journal is
+// recovered into fresh lights: the state must match, group commit must
+// have shared fsyncs, a torn tail must be cut off, and commands that
+// failed (with or without an ABORT record) must not stop recovery
+class JournalRecoveryCheck {
+    static final int WRITERS = 8;
+    static final int LIGHTS_PER_WRITER = 16;
+    static final int COMMANDS_PER_WRITER = 2_000;
+    
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("journal-check");
+        Path file = dir.resolve("remote.wal");
+        LightRegistry lights = lights();
+        Light blown = lights.get(WRITERS * LIGHTS_PER_WRITER);
+        CommandJournal journal = new CommandJournal(file, lights);
+        RemoteControl remote = new RemoteControl();
+        remote.useJournal(journal);
+        
+        // Each writer owns its lights, so the final state doesn't depend
+        // on how the writers interleave
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] writers = new Thread[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            int first = w * LIGHTS_PER_WRITER;
+            writers[w] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < COMMANDS_PER_WRITER; i++) {
+                        Light light = lights.get(first + i % LIGHTS_PER_WRITER);
+                        boolean on = ((i * 2654435761L) >>> 7 & 1) == 0;
+                        remote.submit(on ? new LightOnCommand(light) : new LightOffCommand(light));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long elapsedMillis = (System.nanoTime() - begin) / 1_000_000;
+        if (failure.get() != null) {
+            throw new IllegalStateException("Writers failed", failure.get());
+        }
+        
+        // A failure inline and one on the bus both leave an ABORT record
+        if (!throwsIllegalState(() -> remote.submit(new LightOnCommand(blown)))) {
+            throw new IllegalStateException("Blown light switched on");
+        }
+        if (!throwsIllegalState(() -> remote.useCommandBus(2, 16))) {
+            throw new IllegalStateException("Multi-worker bus accepted with a journal");
+        }
+        CommandBus bus = remote.useCommandBus(1, 16);
+        remote.submit(new LightOnCommand(blown));
+        bus.close();
+        // A crash before the ABORT reached disk: replay must skip the record
+        journal.logDurably(CommandJournal.EXECUTE, new LightOnCommand(blown));
+        journal.applied();
+        
+        long[] expected = lights.snapshot();
+        long syncs = journal.syncCount();
+        long records = journal.recordCount();
+        journal.close();
+        long intact = Files.size(file);
+        if (syncs >= records) {
+            throw new IllegalStateException("Group commit never shared an fsync: " + syncs + " for " + records + " records");
+        }
+        
+        LightRegistry recovered = lights();
+        int replayed;
+        try (CommandJournal reopened = new CommandJournal(file, recovered)) {
+            replayed = reopened.recover(recovered);
+            if (reopened.replayFailureCount() != 1) {
+                throw new IllegalStateException("Expected 1 skipped record but got " + reopened.replayFailureCount());
+            }
+        }
+        requireState(expected, recovered, "recovery");
+        if (replayed != WRITERS * COMMANDS_PER_WRITER) {
+            throw new IllegalStateException("Replayed " + replayed + " records");
+        }
+        
+        // Torn tail: a garbage record and a partial one after the intact ones
+        byte[] garbage = new byte[16 + 7];
+        Arrays.fill(garbage, (byte) 0x5A);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            out.write(ByteBuffer.wrap(garbage));
+        }
+        LightRegistry afterTear = lights();
+        try (CommandJournal torn = new CommandJournal(file, afterTear)) {
+            torn.recover(afterTear);
+        }
+        requireState(expected, afterTear, "recovery after a torn write");
+        if (Files.size(file) != intact) {
+            throw new IllegalStateException("Torn tail not truncated: " + Files.size(file) + " bytes, expected " + intact);
+        }
+        
+        Files.delete(file);
+        Files.delete(dir);
+        System.out.println("OK: " + records + " records journaled with " + syncs + " fsyncs in " + elapsedMillis
+            + " ms; recovery replayed " + replayed + ", cut the torn tail and skipped failed commands");
+    }
+    
+    // Registered in the same order every run, as recovery needs
+    static LightRegistry lights() {
+        LightRegistry lights = new LightRegistry();
+        for (int i = 0; i < WRITERS * LIGHTS_PER_WRITER; i++) {
+            lights.register(new QuietLight());
+        }
+        lights.register(new BlownLight());
+        return lights;
+    }
+    
+    static void requireState(long[] expected, LightRegistry lights, String what) {
+        if (!Arrays.equals(expected, lights.snapshot())) {
+            throw new IllegalStateException("Light state differs after " + what);
+        }
+    }
+    
+    static boolean throwsIllegalState(Runnable action) {
+        try {
+            action.run();
+        } catch (IllegalStateException expected) {
+            return true;
+        }
+        return false;
+    }
+    
+    static class QuietLight extends Light {
+        public void turnOn() {
+            restore(true);
+        }
+        
+        public void turnOff() {
+            restore(false);
+        }
+    }
+    
+    // Every attempt to switch it on fails
+    static final class BlownLight extends QuietLight {
+        public void turnOn() {
+            throw new IllegalStateException("Bulb blown");
+        }
     }
 }
 